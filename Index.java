@@ -7,11 +7,12 @@
 * The program computes the offset value of each record and creates the index 
 * based on the key supplied and the offset value where a record lies in the file.
 * 
-* This program does 4 operations:
+* This program does 5 operations:
 * Create the index 
 * Search for a record through index file
 * Insert new record in the file 
 * List n records from the file from the supplied key value.
+* Reorganize the data file so the records are stored in key order.
 * 
 * The index file will hold the first 1k bytes as Metadata and the records are 
 * inserted as 1k blocks of data. The Metadata will provide the information about
@@ -33,11 +34,19 @@
 * List function will get the numbers of records to be listed and the key from which the 
 * program should print from as input. It searches for the record in the data file and 
 * prints the n records proceeding it. If a record is not available in the file, the 
-* pointer goes to the next record and starts printing from that location.
+* pointer goes to the next record and starts printing from that location. The records 
+* to be listed are read in windows sorted by their offset so that records lying close 
+* together in the data file are fetched with a single read.
+* 
+* Reorganize function rewrites the data file in the order of the keys by walking the 
+* leaf nodes, so that records inserted at the end of the file are moved next to their 
+* neighbouring keys. The records and the updated index are written to temporary files 
+* which are then renamed over the data file and the index file.
 *
 * Written by Adithya Ganapathy (axg172330) at The University of Texas at Dallas
 * starting November 09, 2017.
 ******************************************************************************/
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -50,7 +59,13 @@ import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -91,6 +106,22 @@ public class Index {
 	 */
 	static Tree root;
 	static int Nodesize = 0; 
+	
+	/*
+	 * Number of records gathered before a batch of reads is issued while listing 
+	 * or reorganizing, and the largest gap in bytes between two records that are 
+	 * still merged into a single read. Both can be overridden from the -list 
+	 * command and the window can be overridden from the -reorganize command.
+	 */
+	static int Fetchwindow = 64;
+	static int Fetchgap = 4096;
+	
+	/*
+	 * Upper limits for the two values above, and the largest span in bytes that 
+	 * a single merged read may cover before a new read is started.
+	 */
+	static final int Fetchmaxwindow = 10000;
+	static final int Fetchmaxread = 1048576;
 
 	/*
 	 * Insert function which inserts the record into the tree. It validates 
@@ -425,47 +456,57 @@ public class Index {
 					for(int i = 0; i < node.key.size();i++) {
 						if(node.key.get(i).compareTo(key) > 0) {
 							keyIndex = node.key.indexOf(node.key.get(i));
-							long offsetvalue = node.offsetvalue.get(keyIndex);
-							int dataLength = node.dataLength.get(keyIndex);
-							retrieverecord(indexFile, offsetvalue, dataLength);
+							List<Long> offsets = new ArrayList<Long>();
+							List<Integer> lengths = new ArrayList<Integer>();
+							offsets.add(node.offsetvalue.get(keyIndex));
+							lengths.add(node.dataLength.get(keyIndex));
 							int ct = 2;
 							for (int j = keyIndex + 1; j < node.key.size(); j++, ct++) {
-								if (ct <= listSize)
-									retrieverecord(indexFile, node.offsetvalue.get(j),
-											node.dataLength.get(j));
+								if (ct <= listSize) {
+									offsets.add(node.offsetvalue.get(j));
+									lengths.add(node.dataLength.get(j));
+								}
 							}
 							
 							Tree nextLeaf = node.rightpointer;
 							while (nextLeaf != null) {
 								for (int j = 0; j < nextLeaf.key.size(); j++, ct++) {
-									if (ct <= listSize)
-										retrieverecord(indexFile,nextLeaf.offsetvalue.get(j),nextLeaf.dataLength.get(j));
+									if (ct <= listSize) {
+										offsets.add(nextLeaf.offsetvalue.get(j));
+										lengths.add(nextLeaf.dataLength.get(j));
+									}
 								}
 								nextLeaf = nextLeaf.rightpointer;
 							}
+							retrieverecords(indexFile, offsets, lengths);
 							return;
 						}
 					}
 				} 
 				else if (keyIndex != -1) { 
-					long offsetvalue = node.offsetvalue.get(keyIndex);
-					int dataLength = node.dataLength.get(keyIndex);
-					retrieverecord(indexFile, offsetvalue, dataLength);
+					List<Long> offsets = new ArrayList<Long>();
+					List<Integer> lengths = new ArrayList<Integer>();
+					offsets.add(node.offsetvalue.get(keyIndex));
+					lengths.add(node.dataLength.get(keyIndex));
 					int ct = 2;
 					for (int i = keyIndex + 1; i < node.key.size(); i++, ct++) {
-						if (ct <= listSize)
-							retrieverecord(indexFile, node.offsetvalue.get(i),
-									node.dataLength.get(i));
+						if (ct <= listSize) {
+							offsets.add(node.offsetvalue.get(i));
+							lengths.add(node.dataLength.get(i));
+						}
 					}
 					
 					Tree nextLeaf = node.rightpointer;
 					while (nextLeaf != null) {
 						for (int i = 0; i < nextLeaf.key.size(); i++, ct++) {
-							if (ct <= listSize)
-								retrieverecord(indexFile,nextLeaf.offsetvalue.get(i),nextLeaf.dataLength.get(i));
+							if (ct <= listSize) {
+								offsets.add(nextLeaf.offsetvalue.get(i));
+								lengths.add(nextLeaf.dataLength.get(i));
+							}
 						}
 						nextLeaf = nextLeaf.rightpointer;
 					}
+					retrieverecords(indexFile, offsets, lengths);
 					return;
 				}
 			}
@@ -508,6 +549,218 @@ public class Index {
 		file.close();
 	}
 
+	/*
+	 * This function retrieves a list of records (kept in key order) from the data 
+	 * file. The records are fetched in windows of Fetchwindow records and printed 
+	 * back in key order, followed by the number of reads saved.
+	 */
+	private static void retrieverecords(String indexFile, List<Long> offsets, List<Integer> lengths) throws IOException {
+		String inputFileName = getmetadata(indexFile, "file");
+		RandomAccessFile file = new RandomAccessFile(inputFileName, "r");
+		int reads = 0;
+		for (int start = 0; start < offsets.size(); start += Fetchwindow) {
+			int end = Math.min(start + Fetchwindow, offsets.size());
+			byte records[][] = new byte[end - start][];
+			reads += readwindow(file, offsets, lengths, start, end, records);
+			for (int i = start; i < end; i++) {
+				String str = new String(records[i - start]);
+				System.out.println("At " + offsets.get(i) + ", record: " + str.replace("\n", ""));
+			}
+		}
+		file.close();
+		System.out.println("Records fetched: " + offsets.size() + ", reads issued: " + reads 
+				+ ", reads saved: " + (offsets.size() - reads));
+	}
+
+	/*
+	 * This function reads the records between start and end of the list from the 
+	 * data file into records, in the order of the list. The records are sorted by 
+	 * offset and records with at most Fetchgap bytes between them, not counting the 
+	 * line break, are merged into a single read as long as the read stays within 
+	 * Fetchmaxread bytes. A record that runs past the end of the file is cut short 
+	 * at the end of the file. The number of reads issued is returned.
+	 */
+	private static int readwindow(RandomAccessFile file, List<Long> offsets, List<Integer> lengths, int start, int end, 
+			byte records[][]) throws IOException {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = start; i < end; i++)
+			order.add(i);
+		Collections.sort(order, (a, b) -> Long.compare(offsets.get(a), offsets.get(b)));
+		
+		int reads = 0;
+		int first = 0;
+		while (first < order.size()) {
+			long rangeStart = offsets.get(order.get(first));
+			long rangeEnd = rangeStart + lengths.get(order.get(first)) + 1;
+			int last = first + 1;
+			while (last < order.size() && offsets.get(order.get(last)) <= rangeEnd + Fetchgap + 1) {
+				long nextEnd = Math.max(rangeEnd, offsets.get(order.get(last)) + lengths.get(order.get(last)) + 1);
+				if (nextEnd - rangeStart > Fetchmaxread)
+					break;
+				rangeEnd = nextEnd;
+				last++;
+			}
+			
+			byte buffer[] = new byte[(int) (rangeEnd - rangeStart)];
+			file.seek(rangeStart);
+			int read = 0, n;
+			while (read < buffer.length && (n = file.read(buffer, read, buffer.length - read)) != -1)
+				read += n;
+			reads++;
+			
+			for (int i = first; i < last; i++) {
+				int idx = order.get(i);
+				int from = (int) (offsets.get(idx) - rangeStart);
+				int to = Math.max(from, Math.min(from + lengths.get(idx) + 1, read));
+				records[idx - start] = Arrays.copyOfRange(buffer, from, to);
+			}
+			first = last;
+		}
+		return reads;
+	}
+
+	/*
+	 * This function rewrites the data file in key order. It walks the leaf chain 
+	 * from the leftmost leaf and streams the records, Fetchwindow records at a time, 
+	 * into a temporary file next to the data file. The offsets and lengths in the 
+	 * tree are updated to the new positions and the tree is written to a temporary 
+	 * file next to the index file. Both files are forced to disk and then renamed 
+	 * over the data file and the index file, so both keep their paths.
+	 */
+	private static void reorganize(String indexFile) throws IOException, ClassNotFoundException {
+		FileInputStream fin = new FileInputStream(indexFile);
+		FileChannel fc = fin.getChannel();
+		fc.position(1025l);
+		ObjectInputStream ois = new ObjectInputStream(fin);
+		Tree newRoot = (Tree) ois.readObject();
+		ois.close();
+		root = newRoot;
+		
+		String inputFileName = getmetadata(indexFile, "file");
+		String keyLength = getmetadata(indexFile, "key");
+		Path inputPath = Paths.get(inputFileName).toAbsolutePath();
+		Path indexPath = Paths.get(indexFile).toAbsolutePath();
+		
+		Tree leaf = root;
+		while (!leaf.isLeaf)
+			leaf = leaf.ptr.get(0);
+		
+		Path tempInputPath = null, tempIndexPath = null;
+		RandomAccessFile in = null;
+		FileOutputStream fout = null;
+		boolean swapped = false;
+		int count = 0, reads = 0;
+		try {
+			tempInputPath = Files.createTempFile(inputPath.getParent(), inputPath.getFileName() + ".", ".reorg");
+			tempIndexPath = Files.createTempFile(indexPath.getParent(), indexPath.getFileName() + ".", ".reorg");
+			in = new RandomAccessFile(inputFileName, "r");
+			fout = new FileOutputStream(tempInputPath.toFile());
+			BufferedOutputStream out = new BufferedOutputStream(fout);
+			List<Tree> nodes = new ArrayList<Tree>();
+			List<Integer> positions = new ArrayList<Integer>();
+			List<Long> offsets = new ArrayList<Long>();
+			List<Integer> lengths = new ArrayList<Integer>();
+			long offset = 0;
+			while (leaf != null) {
+				for (int i = 0; i < leaf.key.size(); i++) {
+					nodes.add(leaf);
+					positions.add(i);
+					offsets.add(leaf.offsetvalue.get(i));
+					lengths.add(leaf.dataLength.get(i));
+					if (offsets.size() == Fetchwindow) {
+						byte records[][] = new byte[offsets.size()][];
+						reads += readwindow(in, offsets, lengths, 0, offsets.size(), records);
+						offset = writewindow(out, offset, records, nodes, positions, lengths);
+						count += offsets.size();
+						nodes.clear();
+						positions.clear();
+						offsets.clear();
+						lengths.clear();
+					}
+				}
+				leaf = leaf.rightpointer;
+			}
+			if (!offsets.isEmpty()) {
+				byte records[][] = new byte[offsets.size()][];
+				reads += readwindow(in, offsets, lengths, 0, offsets.size(), records);
+				offset = writewindow(out, offset, records, nodes, positions, lengths);
+				count += offsets.size();
+			}
+			out.flush();
+			fout.getChannel().force(true);
+			out.close();
+			fout = null;
+			in.close();
+			in = null;
+			
+			writefile(keyLength, inputFileName, tempIndexPath.toString());
+			FileChannel indexChannel = FileChannel.open(tempIndexPath, StandardOpenOption.WRITE);
+			indexChannel.force(true);
+			indexChannel.close();
+			
+			copypermissions(inputPath, tempInputPath);
+			copypermissions(indexPath, tempIndexPath);
+			Files.move(tempInputPath, inputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			swapped = true;
+		}
+		finally {
+			if (fout != null)
+				fout.close();
+			if (in != null)
+				in.close();
+			if (!swapped) {
+				if (tempInputPath != null)
+					Files.deleteIfExists(tempInputPath);
+				if (tempIndexPath != null)
+					Files.deleteIfExists(tempIndexPath);
+			}
+		}
+		System.out.println("Reorganized " + count + " records, reads issued: " + reads);
+	}
+
+	/*
+	 * This function gives the temporary file the same permissions as the file it 
+	 * replaces, on file systems which support it.
+	 */
+	private static void copypermissions(Path from, Path to) throws IOException {
+		try {
+			Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		}
+		catch (UnsupportedOperationException e) {
+		}
+	}
+
+	/*
+	 * This function writes one window of records in key order to the new data file, 
+	 * separated by line breaks in the same layout as the create function expects. 
+	 * Only the record itself is copied: records added by the insert function start 
+	 * with the line break in front of them, which is dropped, and records from the 
+	 * create function are followed by one byte of the line break, which is not 
+	 * copied. The leaf entries are updated with the new offset and length and the 
+	 * offset after the last record is returned.
+	 */
+	private static long writewindow(BufferedOutputStream out, long offset, byte records[][], List<Tree> nodes, 
+			List<Integer> positions, List<Integer> lengths) throws IOException {
+		for (int i = 0; i < records.length; i++) {
+			byte record[] = records[i];
+			int from = 0, to = Math.min(lengths.get(i), record.length);
+			if (record.length >= 2 && record[0] == '\r' && record[1] == '\n') {
+				from = 2;
+				to = record.length;
+			}
+			if (offset > 0) {
+				out.write("\r\n".getBytes());
+				offset += 2;
+			}
+			nodes.get(i).offsetvalue.set(positions.get(i), offset);
+			nodes.get(i).dataLength.set(positions.get(i), to - from);
+			out.write(record, from, to - from);
+			offset += to - from;
+		}
+		return offset;
+	}
+
 	/*
 	 * This function obtains the key length from the index file and 
 	 * calls the function record check function for insertion.
@@ -694,7 +947,29 @@ public class Index {
 		}
 
 		else if (args[0].equalsIgnoreCase("-list")) {
+			if (args.length > 4)
+				Fetchwindow = Integer.parseInt(args[4]);
+			if (args.length > 5)
+				Fetchgap = Integer.parseInt(args[5]);
+			if (Fetchwindow < 1 || Fetchwindow > Fetchmaxwindow) {
+				System.out.println("Fetch window must be between 1 and " + Fetchmaxwindow);
+				return;
+			}
+			if (Fetchgap < 0 || Fetchgap > Fetchmaxread) {
+				System.out.println("Fetch gap must be between 0 and " + Fetchmaxread);
+				return;
+			}
 			searchindex(args[1], args[2], args[3]);
 		}
+
+		else if (args[0].equalsIgnoreCase("-reorganize")) {
+			if (args.length > 2)
+				Fetchwindow = Integer.parseInt(args[2]);
+			if (Fetchwindow < 1 || Fetchwindow > Fetchmaxwindow) {
+				System.out.println("Fetch window must be between 1 and " + Fetchmaxwindow);
+				return;
+			}
+			reorganize(args[1]);
+		}
 	}
 }
\ No newline at end of file